@@ -37,5 +37,33 @@ public class Coord {
     public int getY() {
         return y;
     }
-}
 
+    /**
+     * Checks whether this Coord refers to the same position as another object.
+     * Coords are used as map keys, so two Coords with the same x and y must be equal.
+     *
+     * @param obj the object to compare with
+     * @return true if obj is a Coord with the same x and y coordinates
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Coord)) {
+            return false;
+        }
+        Coord other = (Coord) obj;
+        return x == other.x && y == other.y;
+    }
+
+    /**
+     * Returns a hash code for this Coord based on its x and y coordinates.
+     *
+     * @return the hash code
+     */
+    @Override
+    public int hashCode() {
+        return 31 * x + y;
+    }
+}
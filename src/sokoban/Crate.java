@@ -11,6 +11,9 @@ import java.awt.Graphics;
  * Inherits from the MapElement class.
  */
 public class Crate extends MapElement {
+    private Image inPlaceImage;
+    private boolean onGoal;
+
     /**
      * Constructs a crate object with the specified coordinates and image.
      *
@@ -19,7 +22,38 @@ public class Crate extends MapElement {
      * @param image The image representing the crate.
      */
     public Crate(int x, int y, Image image) {
+        this(x, y, image, image);
+    }
+
+    /**
+     * Constructs a crate object with the specified coordinates and images.
+     *
+     * @param x            The x-coordinate of the crate.
+     * @param y            The y-coordinate of the crate.
+     * @param image        The image representing the crate.
+     * @param inPlaceImage The image representing the crate when it is on a goal.
+     */
+    public Crate(int x, int y, Image image, Image inPlaceImage) {
         super(x, y, image);
+        this.inPlaceImage = inPlaceImage;
+    }
+
+    /**
+     * Returns whether the crate is currently on a goal.
+     *
+     * @return true if the crate is on a goal, false otherwise.
+     */
+    public boolean isOnGoal() {
+        return onGoal;
+    }
+
+    /**
+     * Sets whether the crate is currently on a goal.
+     *
+     * @param onGoal true if the crate is on a goal, false otherwise.
+     */
+    public void setOnGoal(boolean onGoal) {
+        this.onGoal = onGoal;
     }
 
     /**
@@ -34,12 +68,13 @@ public class Crate extends MapElement {
     }
 
     /**
-     * Draws the crate on the specified graphics context.
+     * Draws the crate on the specified graphics context, using the in place
+     * image when the crate is on a goal.
      *
      * @param g The graphics context on which to draw the crate.
      */
     @Override
     public void draw(Graphics g) {
-        g.drawImage(getImage(), getX() * TILE_SIZE, getY() * TILE_SIZE, null);
+        g.drawImage(onGoal ? inPlaceImage : getImage(), getX() * TILE_SIZE, getY() * TILE_SIZE, null);
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
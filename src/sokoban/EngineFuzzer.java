@@ -0,0 +1,531 @@
+package sokoban;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stress tests the rules of the GameEngine without graphics. Random levels are
+ * played with random moves on every available processor, and after every move
+ * the engine is checked to make sure the crate count has not changed, nothing
+ * is standing on a wall, there is exactly one player, every element is stored
+ * under its own coordinates, the crates on goals count is right and undo puts
+ * everything back. The first failing case found is shrunk to the shortest LURD
+ * move sequence that still fails so it can be replayed by hand.
+ */
+public class EngineFuzzer {
+
+    private static final String DIRECTIONS = "udlr";
+    private static final int[] DX = {0, 0, -1, 1};
+    private static final int[] DY = {-1, 1, 0, 0};
+
+    //Variables
+    private final int movesPerLevel;
+    private final LevelGenerator generator;
+
+    /**
+     * Constructs a new EngineFuzzer.
+     *
+     * @param movesPerLevel the number of random moves played on each level
+     */
+    public EngineFuzzer(int movesPerLevel) {
+        if (movesPerLevel < 1) {
+            throw new IllegalArgumentException("Moves per level must be positive");
+        }
+        this.movesPerLevel = movesPerLevel;
+        this.generator = new LevelGenerator(3, 3, 3, 200, 1);
+    }
+
+    /**
+     * Runs random levels on several threads until the time runs out or a
+     * level breaks one of the rules. An exception while making a level is a
+     * failure too, as is a level still running a minute after the time is up,
+     * and both are reported with the seed of the case so it can be run again.
+     *
+     * @param baseSeed the seed every level's seed is derived from
+     * @param millis   how long to run for in milliseconds
+     * @param threads  the number of threads to run on
+     * @return the number of moves and levels played and the first failure, if any
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public Report run(long baseSeed, long millis, int threads) throws InterruptedException {
+        LongAdder steps = new LongAdder();
+        LongAdder levels = new LongAdder();
+        AtomicReference<Failure> failure = new AtomicReference<>();
+        Set<Long> running = ConcurrentHashMap.newKeySet();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(millis);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final long workerSeed = baseSeed * 31 + t;
+            pool.execute(() -> {
+                Random seeds = new Random(workerSeed);
+                while (failure.get() == null && System.nanoTime() < deadline) {
+                    long seed = seeds.nextLong();
+                    running.add(seed);
+                    Failure found;
+                    try {
+                        found = runCase(seed);
+                    } catch (RuntimeException e) {
+                        found = new Failure(seed, Collections.emptyList(), "", "making the level threw " + e);
+                    }
+                    running.remove(seed);
+                    steps.add(movesPerLevel);
+                    levels.increment();
+                    if (found != null) {
+                        failure.compareAndSet(null, found);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(millis + TimeUnit.MINUTES.toMillis(1), TimeUnit.MILLISECONDS)) {
+            pool.shutdownNow();
+            for (long seed : running) {
+                failure.compareAndSet(null, new Failure(seed, Collections.emptyList(), "",
+                        "the level was still running a minute after the time was up"));
+            }
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Failure found = failure.get();
+        if (found != null) {
+            found = shrink(found);
+        }
+        return new Report(steps.sum(), levels.sum(), elapsed, found);
+    }
+
+    /**
+     * Plays a single random level with random moves.
+     *
+     * @param seed the seed for the level and its moves
+     * @return the failure, or null if every rule held
+     */
+    public Failure runCase(long seed) {
+        Random random = new Random(seed);
+        List<String> lines = randomLevel(random);
+        StringBuilder moves = new StringBuilder(movesPerLevel);
+        for (int i = 0; i < movesPerLevel; i++) {
+            moves.append(DIRECTIONS.charAt(random.nextInt(4)));
+        }
+        String violation = check(lines, moves.toString());
+        return violation == null ? null : new Failure(seed, lines, moves.toString(), violation);
+    }
+
+    /**
+     * Makes a random level. Most are random scatterings of walls, goals and
+     * crates that do not have to be walled in or solvable, so the edges of the
+     * map get tested too, and the rest come from the LevelGenerator.
+     */
+    private List<String> randomLevel(Random random) {
+        if (random.nextInt(4) == 0) {
+            LevelGenerator.GeneratedLevel generated = generator.generate(random.nextLong());
+            if (generated != null) {
+                return generated.getLines();
+            }
+        }
+
+        int rows = 3 + random.nextInt(10);
+        int cols = 3 + random.nextInt(10);
+        boolean walled = random.nextBoolean();
+        char[][] map = new char[rows][cols];
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                boolean edge = x == 0 || y == 0 || x == cols - 1 || y == rows - 1;
+                int roll = random.nextInt(100);
+                if ((walled && edge) || roll < 20) {
+                    map[y][x] = 'X';
+                } else if (roll < 32) {
+                    map[y][x] = '.';
+                } else if (roll < 50) {
+                    map[y][x] = '*';
+                } else {
+                    map[y][x] = ' ';
+                }
+            }
+        }
+        int py = walled ? 1 + random.nextInt(rows - 2) : random.nextInt(rows);
+        int px = walled ? 1 + random.nextInt(cols - 2) : random.nextInt(cols);
+        map[py][px] = '@';
+
+        List<String> lines = new ArrayList<>(rows);
+        for (char[] row : map) {
+            lines.add(new String(row));
+        }
+        return lines;
+    }
+
+    /**
+     * Plays a sequence of moves on a level, checking the rules after every
+     * move. Each move that goes through is undone and made again to check that
+     * undo restores the position exactly. An exception thrown by the engine
+     * counts as a broken rule, so crashes are reported and shrunk too.
+     *
+     * @param lines the lines of the level
+     * @param moves the moves in LURD notation
+     * @return a description of the first rule broken, or null if none were
+     */
+    public static String check(List<String> lines, String moves) {
+        try {
+            return play(lines, moves);
+        } catch (RuntimeException e) {
+            return "threw " + e;
+        }
+    }
+
+    /**
+     * Plays the moves and checks the rules for check, letting any exception
+     * from the engine escape.
+     */
+    private static String play(List<String> lines, String moves) {
+        Level level = new Level();
+        level.loadLevel(lines);
+        GameEngine engine = new GameEngine(level);
+        int crates = countCrates(engine);
+        String violation = checkRules(engine, crates);
+        if (violation != null) {
+            return "at start: " + violation;
+        }
+
+        for (int i = 0; i < moves.length(); i++) {
+            int d = DIRECTIONS.indexOf(Character.toLowerCase(moves.charAt(i)));
+            int[] before = snapshot(engine);
+            boolean moved = engine.move(DX[d], DY[d]);
+            int[] after = snapshot(engine);
+            String where = "after move " + (i + 1) + " (" + moves.charAt(i) + "): ";
+
+            violation = checkRules(engine, crates);
+            if (violation != null) {
+                return where + violation;
+            }
+            if (!moved) {
+                if (!Arrays.equals(before, after)) {
+                    return where + "a blocked move changed the position";
+                }
+                continue;
+            }
+
+            engine.undo();
+            if (!Arrays.equals(before, snapshot(engine))) {
+                return where + "undo did not restore the position";
+            }
+            violation = checkRules(engine, crates);
+            if (violation != null) {
+                return where + "after undo " + violation;
+            }
+            engine.move(DX[d], DY[d]);
+            if (!Arrays.equals(after, snapshot(engine))) {
+                return where + "making the move again after undo gave a different position";
+            }
+        }
+        return null;
+    }
+
+    private static int countCrates(GameEngine engine) {
+        int crates = 0;
+        for (MapElement element : engine.getElements().values()) {
+            if (element instanceof Crate) {
+                crates++;
+            }
+        }
+        return crates;
+    }
+
+    /**
+     * Checks the rules that must hold after every move.
+     *
+     * @param engine the engine to check
+     * @param crates the number of crates the level started with
+     * @return a description of the first rule broken, or null if none were
+     */
+    private static String checkRules(GameEngine engine, int crates) {
+        Level level = engine.getLevel();
+        char[][] map = level.getMap();
+        int players = 0;
+        int crateCount = 0;
+        int onGoals = 0;
+
+        for (Map.Entry<Coord, MapElement> entry : engine.getElements().entrySet()) {
+            Coord coord = entry.getKey();
+            MapElement element = entry.getValue();
+            if (coord.getX() != element.getX() || coord.getY() != element.getY()) {
+                return element.getClass().getSimpleName() + " at " + element.getX() + "," + element.getY()
+                        + " is stored under " + coord.getX() + "," + coord.getY();
+            }
+            if (element instanceof Wall) {
+                continue;
+            }
+            int x = element.getX();
+            int y = element.getY();
+            if (x < 0 || y < 0 || x >= level.getCols() || y >= level.getRows()) {
+                return element.getClass().getSimpleName() + " left the map at " + x + "," + y;
+            }
+            if (map[y][x] == 'X') {
+                return element.getClass().getSimpleName() + " overlaps a wall at " + x + "," + y;
+            }
+            if (element instanceof Player) {
+                players++;
+                if (element != engine.getPlayer()) {
+                    return "the map holds a player the engine is not moving";
+                }
+            } else if (element instanceof Crate) {
+                crateCount++;
+                if (engine.isGoal(x, y)) {
+                    onGoals++;
+                }
+                if (((Crate) element).isOnGoal() != engine.isGoal(x, y)) {
+                    return "crate at " + x + "," + y + " has the wrong on goal state";
+                }
+            }
+        }
+
+        if (players != 1) {
+            return "there are " + players + " players on the map";
+        }
+        if (crateCount != crates) {
+            return "crate count changed from " + crates + " to " + crateCount;
+        }
+        if (onGoals != engine.getCratesOnGoals()) {
+            return "engine counts " + engine.getCratesOnGoals() + " crates on goals but there are " + onGoals;
+        }
+        return null;
+    }
+
+    /**
+     * Records the position of the player and crates and the engine's counters
+     * and deadlock state.
+     */
+    private static int[] snapshot(GameEngine engine) {
+        int cols = engine.getLevel().getCols();
+        List<Integer> crates = new ArrayList<>();
+        for (MapElement element : engine.getElements().values()) {
+            if (element instanceof Crate) {
+                crates.add(element.getY() * cols + element.getX());
+            }
+        }
+        crates.sort(null);
+        Player player = engine.getPlayer();
+        int[] snapshot = new int[5 + crates.size()];
+        snapshot[0] = player.getY() * cols + player.getX();
+        snapshot[1] = engine.getMoveCount();
+        snapshot[2] = engine.getPushCount();
+        snapshot[3] = engine.getCratesOnGoals();
+        snapshot[4] = engine.isDeadlocked() ? 1 : 0;
+        for (int i = 0; i < crates.size(); i++) {
+            snapshot[5 + i] = crates.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Shrinks a failing move sequence by repeatedly cutting out chunks of moves
+     * that are not needed for it to break the same rule, halving the chunk size
+     * each time no chunk can be removed. A chunk whose removal breaks some other
+     * rule is kept, so the shrunk moves still show the failure first found.
+     *
+     * @param failure the failure to shrink
+     * @return the failure with the shortest move sequence found
+     */
+    public static Failure shrink(Failure failure) {
+        String moves = failure.getMoves();
+        String violation = failure.getViolation();
+        String rule = rule(violation);
+        int chunk = Math.max(1, moves.length() / 2);
+        while (chunk >= 1) {
+            boolean removed = false;
+            int start = 0;
+            while (start + chunk <= moves.length()) {
+                String candidate = moves.substring(0, start) + moves.substring(start + chunk);
+                String result = check(failure.getLines(), candidate);
+                if (result != null && rule(result).equals(rule)) {
+                    moves = candidate;
+                    violation = result;
+                    removed = true;
+                } else {
+                    start += chunk;
+                }
+            }
+            if (!removed) {
+                chunk /= 2;
+            }
+        }
+        return new Failure(failure.getSeed(), failure.getLines(), moves, violation);
+    }
+
+    /**
+     * Returns the rule a violation describes, without the move it was found after.
+     */
+    private static String rule(String violation) {
+        if (violation.startsWith("at start: ")) {
+            return violation.substring("at start: ".length());
+        }
+        if (violation.startsWith("after move ")) {
+            return violation.substring(violation.indexOf("): ") + 3);
+        }
+        return violation;
+    }
+
+    /**
+     * A level and move sequence that broke one of the engine's rules.
+     */
+    public static class Failure {
+
+        private final long seed;
+        private final List<String> lines;
+        private final String moves;
+        private final String violation;
+
+        /**
+         * Constructs a new Failure.
+         *
+         * @param seed      the seed the level and moves were made from
+         * @param lines     the lines of the level
+         * @param moves     the moves in LURD notation
+         * @param violation a description of the rule that was broken
+         */
+        public Failure(long seed, List<String> lines, String moves, String violation) {
+            this.seed = seed;
+            this.lines = lines;
+            this.moves = moves;
+            this.violation = violation;
+        }
+
+        /**
+         * Returns the seed the level and moves were made from.
+         *
+         * @return the seed
+         */
+        public long getSeed() {
+            return seed;
+        }
+
+        /**
+         * Returns the lines of the level.
+         *
+         * @return the lines of the level
+         */
+        public List<String> getLines() {
+            return lines;
+        }
+
+        /**
+         * Returns the moves in LURD notation.
+         *
+         * @return the moves
+         */
+        public String getMoves() {
+            return moves;
+        }
+
+        /**
+         * Returns a description of the rule that was broken.
+         *
+         * @return the broken rule
+         */
+        public String getViolation() {
+            return violation;
+        }
+    }
+
+    /**
+     * The outcome of a fuzzing run.
+     */
+    public static class Report {
+
+        private final long steps;
+        private final long levels;
+        private final long millis;
+        private final Failure failure;
+
+        /**
+         * Constructs a new Report.
+         *
+         * @param steps   the number of moves played
+         * @param levels  the number of levels played
+         * @param millis  how long the run took in milliseconds
+         * @param failure the first failure found, or null if there were none
+         */
+        public Report(long steps, long levels, long millis, Failure failure) {
+            this.steps = steps;
+            this.levels = levels;
+            this.millis = millis;
+            this.failure = failure;
+        }
+
+        /**
+         * Returns the number of moves played.
+         *
+         * @return the number of moves
+         */
+        public long getSteps() {
+            return steps;
+        }
+
+        /**
+         * Returns the number of levels played.
+         *
+         * @return the number of levels
+         */
+        public long getLevels() {
+            return levels;
+        }
+
+        /**
+         * Returns how long the run took.
+         *
+         * @return the run time in milliseconds
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * Returns the first failure found.
+         *
+         * @return the failure, or null if every rule held
+         */
+        public Failure getFailure() {
+            return failure;
+        }
+    }
+
+    /**
+     * Runs the fuzzer and prints the throughput and any failure found.
+     * Exits with status 1 if a rule was broken so it can be used in scripts.
+     *
+     * @param args optionally the number of seconds to run, the seed and the number of threads
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : 60;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        Report report = new EngineFuzzer(200).run(seed, TimeUnit.SECONDS.toMillis(seconds), threads);
+        long perMinute = report.getSteps() * 60000 / Math.max(1, report.getMillis());
+        System.out.println("Seed " + seed + ": " + report.getSteps() + " moves on " + report.getLevels()
+                + " levels in " + report.getMillis() + " ms on " + threads + " threads (" + perMinute + " moves/minute)");
+
+        Failure failure = report.getFailure();
+        if (failure != null) {
+            System.out.println("Rule broken " + failure.getViolation());
+            System.out.println("Level (seed " + failure.getSeed() + "):");
+            for (String line : failure.getLines()) {
+                System.out.println(line);
+            }
+            System.out.println("Moves: " + failure.getMoves());
+            System.exit(1);
+        }
+    }
+}
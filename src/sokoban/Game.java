@@ -22,10 +22,15 @@ public class Game extends JPanel {
     //Varibles
     private Level level;
     private Map<Coord, MapElement> elements;
+    private Map<Coord, MapElement> tiles;
     private Map<Character, Image> imageMap;
+    private Image crateInPlaceImage;
     private Player player;
     private int moveCount;
     private GameEngine gameEngine;
+    private int currentLevel;
+    private boolean levelComplete;
+    private static final int LEVEL_DELAY = 500; // Milliseconds the solved level is shown for
     private final String[] mapFiles = {
         "maps/level1.txt",
         "maps/level2.txt",
@@ -42,10 +47,11 @@ public class Game extends JPanel {
     public Game() {
         level = new Level();
         elements = new HashMap<>();
+        tiles = new HashMap<>();
         imageMap = new HashMap<>();
         loadImages();
         setupUI();
-        loadLevel(mapFiles[0]); // Load the first level by default
+        loadLevel(mapFiles[currentLevel]); // Load the first level by default
         setFocusable(true);
     }
 
@@ -63,6 +69,7 @@ public class Game extends JPanel {
             imageMap.put('@', loadImage("graphics/player.png"));
             imageMap.put('*', loadImage("graphics/crate.png"));
             imageMap.put('.', loadImage("graphics/diamond.png"));
+            crateInPlaceImage = loadImage("graphics/crateinplace.png");
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -97,16 +104,34 @@ public class Game extends JPanel {
         level.loadLevel(filename);
         level.displayMap(); // Display the map in the console
         elements.clear();
+        tiles.clear();
         moveCount = 0;
+        levelComplete = false;
         initializeElements();
         gameEngine = new GameEngine(level, elements, player); // Initialize GameEngine
         repaint();
     }
 
+    /**
+     * Loads the next level once the current one is solved.
+     * If there are no more levels, the player is told they have completed the game
+     * and the level stays complete so no more moves are taken.
+     */
+    private void nextLevel() {
+        if (currentLevel + 1 < mapFiles.length) {
+            currentLevel++;
+            loadLevel(mapFiles[currentLevel]);
+        } else {
+            JOptionPane.showMessageDialog(this, "All levels complete!");
+        }
+    }
+
     /**
      * Initializes the elements of the game based on the map provided by the level.
      * Each character in the map represents a specific element in the game.
-     * The elements are created and stored in the elements map.
+     * Walls, crates and the player are stored in the elements map, while the
+     * floor and goals underneath them are stored in the tiles map so that they
+     * are still drawn once a crate or the player moves off them.
      */
     private void initializeElements() {
         char[][] map = level.getMap();
@@ -114,27 +139,33 @@ public class Game extends JPanel {
             for (int x = 0; x < level.getCols(); x++) {
                 char c = map[y][x];
                 MapElement element = null;
+                MapElement tile = null;
                 switch (c) {
                     case 'X':
                         element = new Wall(x, y, imageMap.get('X'));
                         break;
                     case ' ':
-                        element = new Floor(x, y, imageMap.get(' '));
+                        tile = new Floor(x, y, imageMap.get(' '));
                         break;
                     case '@':
                         player = new Player(x, y, imageMap.get('@'));
                         element = player;
+                        tile = new Floor(x, y, imageMap.get(' '));
                         break;
                     case '*':
-                        element = new Crate(x, y, imageMap.get('*'));
+                        element = new Crate(x, y, imageMap.get('*'), crateInPlaceImage);
+                        tile = new Floor(x, y, imageMap.get(' '));
                         break;
                     case '.':
-                        element = new Diamond(x, y, imageMap.get('.'));
+                        tile = new Diamond(x, y, imageMap.get('.'));
                         break;
                 }
                 if (element != null) {
                     elements.put(new Coord(x, y), element);
                 }
+                if (tile != null) {
+                    tiles.put(new Coord(x, y), tile);
+                }
             }
         }
     }
@@ -167,25 +198,35 @@ public class Game extends JPanel {
                     break;
             }
 
+            if (levelComplete) {
+                return; // Ignore input until the next level is loaded, or for good after the last one
+            }
             if (dx != 0 || dy != 0) {
-                int playerX = player.getX();
-                int playerY = player.getY();
-                gameEngine.movePlayer(dx, dy); // Delegate player movement to GameEngine
+                gameEngine.move(dx, dy); // Delegate player and crate movement to GameEngine
                 moveCount = gameEngine.getMoveCount(); // Update move count from GameEngine
-                gameEngine.moveCrate(playerX, playerY, dx, dy); // Attempt to move crate
                 repaint();
+                if (gameEngine.isSolved()) {
+                    // Show the solved level for a moment before moving on
+                    levelComplete = true;
+                    Timer timer = new Timer(LEVEL_DELAY, event -> nextLevel());
+                    timer.setRepeats(false);
+                    timer.start();
+                }
             }
         }
     }
 
     /**
-        * Overrides the paintComponent method to draw the game elements and display the move count.
+        * Overrides the paintComponent method to draw the floor and goals, then the game elements on top, and display the move count.
         * 
         * @param g the Graphics object used for drawing
         */
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
+        for (MapElement tile : tiles.values()) {
+            tile.draw(g);
+        }
         for (MapElement element : elements.values()) {
             element.draw(g);
         }
@@ -199,6 +240,7 @@ public class Game extends JPanel {
         * @param args the command line arguments
         */
     public static void main(String[] args) {
+        PatternDatabase.getShared(); // Load the deadlock patterns at start rather than on the first push
         JFrame frame = new JFrame("Sokoban Game");
         Game game = new Game();
         frame.add(game);
@@ -1,5 +1,8 @@
 package sokoban;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -15,6 +18,12 @@ public class GameEngine {
     private Map<Coord, MapElement> elements;
     private Player player;
     private int moveCount;
+    private int pushCount;
+    private boolean[][] goals;
+    private int crateCount;
+    private int cratesOnGoals;
+    private boolean deadlocked;
+    private Deque<int[]> history = new ArrayDeque<>();
 
     /**
      * Constructs a new GameEngine object.
@@ -28,6 +37,81 @@ public class GameEngine {
         this.elements = elements;
         this.player = player;
         this.moveCount = 0;
+        this.pushCount = 0;
+        initializeGoals();
+    }
+
+    /**
+     * Constructs a new GameEngine for a level without any graphics, creating the
+     * walls, crates and player from the level map. This lets levels and
+     * solutions be played through the engine without a game window.
+     *
+     * @param level the level of the game
+     */
+    public GameEngine(Level level) {
+        this.level = level;
+        this.elements = new HashMap<>();
+        this.moveCount = 0;
+        this.pushCount = 0;
+        char[][] map = level.getMap();
+        for (int y = 0; y < level.getRows(); y++) {
+            for (int x = 0; x < level.getCols(); x++) {
+                switch (map[y][x]) {
+                    case 'X':
+                        elements.put(new Coord(x, y), new Wall(x, y, null));
+                        break;
+                    case '@':
+                        player = new Player(x, y, null);
+                        elements.put(new Coord(x, y), player);
+                        break;
+                    case '*':
+                        elements.put(new Coord(x, y), new Crate(x, y, null));
+                        break;
+                }
+            }
+        }
+        initializeGoals();
+    }
+
+    /**
+     * Builds the goal layer from the level map and counts the crates, and the
+     * crates already on goals, so that solved state can be tracked as crates move.
+     * Goals are kept separately from the elements so that a crate or the player
+     * standing on a goal does not remove it.
+     */
+    private void initializeGoals() {
+        char[][] map = level.getMap();
+        goals = new boolean[level.getRows()][level.getCols()];
+        for (int y = 0; y < level.getRows(); y++) {
+            for (int x = 0; x < level.getCols(); x++) {
+                goals[y][x] = map[y][x] == '.';
+            }
+        }
+
+        crateCount = 0;
+        cratesOnGoals = 0;
+        for (MapElement element : elements.values()) {
+            if (element instanceof Crate) {
+                Crate crate = (Crate) element;
+                crate.setOnGoal(isGoal(crate.getX(), crate.getY()));
+                crateCount++;
+                if (crate.isOnGoal()) {
+                    cratesOnGoals++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the specified coordinates are a goal.
+     *
+     * @param x the x-coordinate to check
+     * @param y the y-coordinate to check
+     * @return true if there is a goal at the specified coordinates, false
+     * otherwise
+     */
+    public boolean isGoal(int x, int y) {
+        return x >= 0 && y >= 0 && x < level.getCols() && y < level.getRows() && goals[y][x];
     }
 
     /**
@@ -72,6 +156,17 @@ public class GameEngine {
                 elements.remove(crateCoord);
                 crate.move(dx, dy);
                 elements.put(newCrateCoord, crate);
+                pushCount++;
+                deadlocked = deadlocked || isDeadlockAt(newCrateX, newCrateY);
+
+                // Keep the count of crates on goals up to date
+                if (crate.isOnGoal()) {
+                    cratesOnGoals--;
+                }
+                crate.setOnGoal(goals[newCrateY][newCrateX]);
+                if (crate.isOnGoal()) {
+                    cratesOnGoals++;
+                }
             }
         }
     }
@@ -99,6 +194,69 @@ public class GameEngine {
         }
     }
 
+    /**
+     * Moves the player one step in the specified direction, pushing a crate
+     * ahead of them if there is one and it is free to move. Moves made this
+     * way can be taken back with undo.
+     *
+     * @param dx The change in x-coordinate.
+     * @param dy The change in y-coordinate.
+     * @return true if the player moved, false if the move was blocked
+     */
+    public boolean move(int dx, int dy) {
+        int movesBefore = moveCount;
+        int pushesBefore = pushCount;
+        boolean deadlockedBefore = deadlocked;
+        moveCrate(player.getX(), player.getY(), dx, dy);
+        movePlayer(dx, dy);
+        if (moveCount == movesBefore) {
+            return false;
+        }
+        history.push(new int[]{dx, dy, pushCount - pushesBefore, deadlockedBefore ? 1 : 0});
+        return true;
+    }
+
+    /**
+     * Undoes the last move made with move, putting the player and any crate
+     * they pushed back where they were.
+     *
+     * @return true if a move was undone, false if there was nothing to undo
+     */
+    public boolean undo() {
+        int[] last = history.poll();
+        if (last == null) {
+            return false;
+        }
+        int dx = last[0];
+        int dy = last[1];
+        int x = player.getX();
+        int y = player.getY();
+
+        // Step the player back
+        elements.remove(new Coord(x, y));
+        player.move(-dx, -dy);
+        elements.put(new Coord(x - dx, y - dy), player);
+        moveCount--;
+        deadlocked = last[3] == 1;
+
+        if (last[2] > 0) {
+            // Pull the pushed crate back into the square the player left
+            Coord crateCoord = new Coord(x + dx, y + dy);
+            Crate crate = (Crate) elements.remove(crateCoord);
+            crate.move(-dx, -dy);
+            elements.put(new Coord(x, y), crate);
+            pushCount--;
+            if (crate.isOnGoal()) {
+                cratesOnGoals--;
+            }
+            crate.setOnGoal(goals[y][x]);
+            if (crate.isOnGoal()) {
+                cratesOnGoals++;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns the number of moves made in the game.
      *
@@ -107,4 +265,93 @@ public class GameEngine {
     public int getMoveCount() {
         return moveCount;
     }
+
+    /**
+     * Returns the number of crate pushes made in the game.
+     *
+     * @return the number of pushes made
+     */
+    public int getPushCount() {
+        return pushCount;
+    }
+
+    /**
+     * Returns the player object.
+     *
+     * @return the player
+     */
+    public Player getPlayer() {
+        return player;
+    }
+
+    /**
+     * Returns the map of coordinates to the walls, crates and player.
+     *
+     * @return the map of coordinates to map elements
+     */
+    public Map<Coord, MapElement> getElements() {
+        return elements;
+    }
+
+    /**
+     * Returns the level being played.
+     *
+     * @return the level
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Checks the crates around a crate against the shared PatternDatabase to see
+     * if any of them can never be pushed again while off a goal.
+     *
+     * @param x the x-coordinate of the crate
+     * @param y the y-coordinate of the crate
+     * @return true if the level can no longer be solved, false if no deadlock was found
+     */
+    public boolean isDeadlockAt(int x, int y) {
+        int pattern = 0;
+        for (int i = 0; i < PatternDatabase.NEIGHBOURS; i++) {
+            int nx = x + PatternDatabase.DX[i];
+            int ny = y + PatternDatabase.DY[i];
+            int cell = PatternDatabase.EMPTY;
+            if (nx < 0 || ny < 0 || nx >= level.getCols() || ny >= level.getRows() || level.getMap()[ny][nx] == 'X') {
+                cell = PatternDatabase.WALL;
+            } else if (elements.get(new Coord(nx, ny)) instanceof Crate) {
+                cell = PatternDatabase.CRATE;
+            }
+            pattern = pattern * 3 + cell;
+        }
+
+        return PatternDatabase.getShared().isDeadlock(pattern, (dx, dy) -> isGoal(x + dx, y + dy));
+    }
+
+    /**
+     * Checks if a push has left a crate that can never be moved off a non-goal
+     * square, so the level can no longer be solved without undoing.
+     *
+     * @return true if the level is deadlocked, false otherwise
+     */
+    public boolean isDeadlocked() {
+        return deadlocked;
+    }
+
+    /**
+     * Returns the number of crates that are currently on a goal.
+     *
+     * @return the number of crates on goals
+     */
+    public int getCratesOnGoals() {
+        return cratesOnGoals;
+    }
+
+    /**
+     * Checks if the level is solved, meaning every crate is on a goal.
+     *
+     * @return true if the level is solved, false otherwise
+     */
+    public boolean isSolved() {
+        return crateCount > 0 && cratesOnGoals == crateCount;
+    }
 }
@@ -43,6 +43,16 @@ public class Level {
             e.printStackTrace();
         }
 
+        loadLevel(lines);
+    }
+
+    /**
+     * Initializes the map from lines of level data that are already in memory,
+     * such as a level made by the LevelGenerator.
+     *
+     * @param lines the lines of the level data, one per row
+     */
+    public void loadLevel(List<String> lines) {
         if (!lines.isEmpty()) {
             rows = lines.size();
             cols = lines.get(0).length();
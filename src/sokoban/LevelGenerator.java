@@ -0,0 +1,688 @@
+package sokoban;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Procedurally generates Sokoban levels that are solvable by construction.
+ * Rooms are assembled from small wall templates, goals are placed on the floor
+ * and the crates are scattered by playing the game in reverse (pulling crates
+ * off the goals), so every generated level can be solved by undoing the pulls.
+ * The reverse play is searched breadth first, so each candidate is graded by the
+ * pushes and box-line changes of a push-optimal solution, and written in the
+ * same text format used by the files in the Maps folder.
+ */
+public class LevelGenerator {
+
+    //Map characters, matching the ones read by Level and Game
+    private static final char WALL = 'X';
+    private static final char FLOOR = ' ';
+    private static final char CRATE = '*';
+    private static final char GOAL = '.';
+    private static final char PLAYER = '@';
+
+    private static final int TEMPLATE_SIZE = 3;
+    private static final int BOX_LINE_WEIGHT = 3;
+    private static final int[] DX = {0, 0, -1, 1};
+    private static final int[] DY = {-1, 1, 0, 0};
+
+    /**
+     * The 3x3 wall templates the rooms are built from. Each one is also used
+     * rotated and mirrored when it is placed.
+     */
+    private static final String[][] TEMPLATES = {
+        {"   ", "   ", "   "},
+        {"X  ", "   ", "   "},
+        {"XX ", "   ", "   "},
+        {"XXX", "   ", "   "},
+        {"XXX", "X  ", "X  "},
+        {"X  ", "   ", "  X"},
+        {"X X", "   ", "   "},
+        {" X ", "   ", "   "},
+        {"   ", " X ", "   "},
+        {"XX ", "X  ", "   "},
+        {"X  ", "X  ", "   "},
+        {"   ", " XX", "   "},
+        {"X  ", "XX ", "   "},
+        {"  X", "   ", "X  "}
+    };
+
+    //Variables
+    private final int roomWidth;
+    private final int roomHeight;
+    private final int crateCount;
+    private final int maxStates;
+    private final int attempts;
+
+    /**
+     * Constructs a new LevelGenerator.
+     *
+     * @param roomWidth    the width of a room in templates
+     * @param roomHeight   the height of a room in templates
+     * @param crateCount   the number of crates (and goals) in each level
+     * @param maxStates    the most reverse play positions searched for each candidate
+     * @param attempts     the number of candidate rooms tried for each level
+     */
+    public LevelGenerator(int roomWidth, int roomHeight, int crateCount, int maxStates, int attempts) {
+        if (roomWidth < 1 || roomHeight < 1 || crateCount < 1 || maxStates < 1 || attempts < 1) {
+            throw new IllegalArgumentException("Generator settings must all be positive");
+        }
+        this.roomWidth = roomWidth;
+        this.roomHeight = roomHeight;
+        this.crateCount = crateCount;
+        this.maxStates = maxStates;
+        this.attempts = attempts;
+    }
+
+    /**
+     * Generates a batch of levels in parallel using all available processors.
+     * Each level is generated from its own seed derived from the base seed and
+     * its index, so the same base seed always produces the same batch no matter
+     * how the work is scheduled.
+     *
+     * @param count    the number of levels to generate
+     * @param baseSeed the seed the whole batch is derived from
+     * @return the generated levels in index order, skipping any index for which
+     * no valid candidate was found
+     */
+    public List<GeneratedLevel> generate(int count, long baseSeed) {
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            List<Future<GeneratedLevel>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final long seed = levelSeed(baseSeed, i);
+                futures.add(pool.submit(() -> generate(seed)));
+            }
+
+            List<GeneratedLevel> levels = new ArrayList<>(count);
+            for (Future<GeneratedLevel> future : futures) {
+                GeneratedLevel level = future.get();
+                if (level != null) {
+                    levels.add(level);
+                }
+            }
+            return levels;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Level generation was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Level generation failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Generates a single level from the given seed, keeping the hardest of the
+     * candidates tried.
+     *
+     * @param seed the seed for this level
+     * @return the hardest candidate found, or null if no candidate was valid
+     */
+    public GeneratedLevel generate(long seed) {
+        Random random = new Random(seed);
+        GeneratedLevel best = null;
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            char[][] room = buildRoom(random);
+            if (room == null) {
+                continue;
+            }
+            GeneratedLevel candidate = scatterCrates(room, random, seed);
+            if (candidate != null && (best == null || candidate.getScore() > best.getScore())) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Derives the seed of a single level from the seed of the batch.
+     */
+    private static long levelSeed(long baseSeed, int index) {
+        long z = baseSeed + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Builds a walled room out of randomly rotated and mirrored templates.
+     * Dead ends are filled in and the room is rejected if its floor is not
+     * connected or is too small for the crates.
+     *
+     * @param random the random source for this level
+     * @return the room, or null if it was rejected
+     */
+    private char[][] buildRoom(Random random) {
+        int width = roomWidth * TEMPLATE_SIZE + 2;
+        int height = roomHeight * TEMPLATE_SIZE + 2;
+        char[][] room = new char[height][width];
+        for (char[] row : room) {
+            Arrays.fill(row, WALL);
+        }
+
+        for (int by = 0; by < roomHeight; by++) {
+            for (int bx = 0; bx < roomWidth; bx++) {
+                String[] template = TEMPLATES[random.nextInt(TEMPLATES.length)];
+                int rotation = random.nextInt(4);
+                boolean mirror = random.nextBoolean();
+                for (int ty = 0; ty < TEMPLATE_SIZE; ty++) {
+                    for (int tx = 0; tx < TEMPLATE_SIZE; tx++) {
+                        int sx = mirror ? TEMPLATE_SIZE - 1 - tx : tx;
+                        int sy = ty;
+                        for (int r = 0; r < rotation; r++) {
+                            int t = sx;
+                            sx = TEMPLATE_SIZE - 1 - sy;
+                            sy = t;
+                        }
+                        room[1 + by * TEMPLATE_SIZE + ty][1 + bx * TEMPLATE_SIZE + tx] = template[sy].charAt(sx);
+                    }
+                }
+            }
+        }
+
+        fillDeadEnds(room);
+        int floor = countFloor(room);
+        if (floor < crateCount * 3 + 1 || !isConnected(room, floor)) {
+            return null;
+        }
+        return room;
+    }
+
+    /**
+     * Turns floor cells with three or more walls around them into walls until
+     * none are left, since crates pushed into them could never come back out.
+     */
+    private static void fillDeadEnds(char[][] room) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int y = 1; y < room.length - 1; y++) {
+                for (int x = 1; x < room[y].length - 1; x++) {
+                    if (room[y][x] != FLOOR) {
+                        continue;
+                    }
+                    int walls = 0;
+                    for (int d = 0; d < 4; d++) {
+                        if (room[y + DY[d]][x + DX[d]] == WALL) {
+                            walls++;
+                        }
+                    }
+                    if (walls >= 3) {
+                        room[y][x] = WALL;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private static int countFloor(char[][] room) {
+        int floor = 0;
+        for (char[] row : room) {
+            for (char c : row) {
+                if (c == FLOOR) {
+                    floor++;
+                }
+            }
+        }
+        return floor;
+    }
+
+    /**
+     * Checks that every floor cell of the room can be reached from every other.
+     */
+    private static boolean isConnected(char[][] room, int floor) {
+        int width = room[0].length;
+        for (int y = 0; y < room.length; y++) {
+            for (int x = 0; x < width; x++) {
+                if (room[y][x] == FLOOR) {
+                    boolean[] free = new boolean[room.length * width];
+                    for (int cy = 0; cy < room.length; cy++) {
+                        for (int cx = 0; cx < width; cx++) {
+                            free[cy * width + cx] = room[cy][cx] == FLOOR;
+                        }
+                    }
+                    int reached = 0;
+                    for (int distance : distances(free, width, y * width + x)) {
+                        if (distance >= 0) {
+                            reached++;
+                        }
+                    }
+                    return reached == floor;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the walking distance from a start cell to every cell of a grid.
+     *
+     * @param free  which cells can be walked on, indexed by y * width + x
+     * @param width the width of the grid
+     * @param start the index of the start cell
+     * @return the distance to each cell, or -1 where the cell cannot be reached
+     */
+    private static int[] distances(boolean[] free, int width, int start) {
+        int[] distance = new int[free.length];
+        Arrays.fill(distance, -1);
+        int[] queue = new int[free.length];
+        int head = 0;
+        int tail = 0;
+        distance[start] = 0;
+        queue[tail++] = start;
+        while (head < tail) {
+            int cell = queue[head++];
+            for (int d = 0; d < 4; d++) {
+                int next = cell + DY[d] * width + DX[d];
+                if (free[next] && distance[next] < 0) {
+                    distance[next] = distance[cell] + 1;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * Places the goals with a crate on each, then scatters the crates by
+     * searching breadth first over every position reverse play can reach,
+     * pulling one crate at a time. A position's depth in the search is the
+     * fewest pushes needed to solve it. The deepest positions that can be
+     * written in the level format (no crate on a goal, and somewhere off the
+     * goals for the player to stand) are graded on that push-optimal solution
+     * and the best becomes the candidate.
+     *
+     * @param room   the room to fill
+     * @param random the random source for this level
+     * @param seed   the seed of this level, recorded on the result
+     * @return the candidate, or null if no position could be written out
+     */
+    private GeneratedLevel scatterCrates(char[][] room, Random random, long seed) {
+        int height = room.length;
+        int width = room[0].length;
+        boolean[] floor = new boolean[height * width];
+        List<Integer> floorCells = new ArrayList<>();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (room[y][x] == FLOOR) {
+                    floor[y * width + x] = true;
+                    floorCells.add(y * width + x);
+                }
+            }
+        }
+
+        //Goals start with a crate on each of them
+        boolean[] goal = new boolean[height * width];
+        int[] solved = new int[crateCount];
+        Collections.shuffle(floorCells, random);
+        for (int i = 0; i < crateCount; i++) {
+            goal[floorCells.get(i)] = true;
+            solved[i] = floorCells.get(i);
+        }
+        Arrays.sort(solved);
+
+        //The player can finish anywhere, so start from every area the solved crates leave
+        Map<Position, Node> seen = new HashMap<>();
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        boolean[] free = freeCells(floor, solved);
+        boolean[] covered = new boolean[free.length];
+        for (int cell = 0; cell < free.length; cell++) {
+            if (free[cell] && !covered[cell]) {
+                int[] distance = distances(free, width, cell);
+                for (int other = 0; other < distance.length; other++) {
+                    covered[other] |= distance[other] >= 0;
+                }
+                Node start = new Node(new Position(cell, solved), cell, null, -1, -1, 0);
+                seen.put(start.position, start);
+                queue.add(start);
+            }
+        }
+
+        List<Node> deepest = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            if (node.depth > 0 && startCell(node, floor, goal, width) >= 0) {
+                if (!deepest.isEmpty() && node.depth > deepest.get(0).depth) {
+                    deepest.clear();
+                }
+                deepest.add(node);
+            }
+            if (seen.size() >= maxStates) {
+                continue;
+            }
+
+            //Every pull the player can reach: stand next to a crate and step back
+            int[] crates = node.position.crates;
+            free = freeCells(floor, crates);
+            int[] distance = distances(free, width, node.position.player);
+            for (int i = 0; i < crates.length; i++) {
+                for (int d = 0; d < 4; d++) {
+                    int offset = DY[d] * width + DX[d];
+                    int stand = crates[i] + offset;
+                    int behind = stand + offset;
+                    if (distance[stand] < 0 || !free[behind]) {
+                        continue;
+                    }
+                    int[] pulled = crates.clone();
+                    pulled[i] = stand;
+                    Arrays.sort(pulled);
+                    Position position = new Position(area(freeCells(floor, pulled), width, behind), pulled);
+                    if (!seen.containsKey(position)) {
+                        Node next = new Node(position, behind, node, crates[i], stand, node.depth + 1);
+                        seen.put(position, next);
+                        queue.add(next);
+                    }
+                }
+            }
+        }
+
+        GeneratedLevel best = null;
+        for (Node node : deepest) {
+            GeneratedLevel candidate = grade(room, floor, goal, node, seed);
+            if (best == null || candidate.getScore() > best.getScore()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds where the player starts when a position is written in the level
+     * format, which has no way to show a crate or the player standing on a
+     * goal. Positions are told apart by the player's area, so the player can
+     * stand on whichever cell of the area is nearest and not a goal.
+     *
+     * @return the start cell, or -1 if the position cannot be written out
+     */
+    private static int startCell(Node node, boolean[] floor, boolean[] goal, int width) {
+        for (int crate : node.position.crates) {
+            if (goal[crate]) {
+                return -1;
+            }
+        }
+        if (!goal[node.playerCell]) {
+            return node.playerCell;
+        }
+        int[] distance = distances(freeCells(floor, node.position.crates), width, node.playerCell);
+        int start = -1;
+        for (int cell = 0; cell < distance.length; cell++) {
+            if (distance[cell] >= 0 && !goal[cell] && (start < 0 || distance[cell] < distance[start])) {
+                start = cell;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Grades a position by playing its push-optimal solution forwards: each
+     * pull that led to the position, undone in reverse order, is a push.
+     * The walk starts from the cell the player is written on.
+     *
+     * @return the graded level
+     */
+    private static GeneratedLevel grade(char[][] room, boolean[] floor, boolean[] goal, Node node, long seed) {
+        int width = room[0].length;
+        int start = startCell(node, floor, goal, width);
+        int player = start;
+        int moves = 0;
+        int boxLines = 0;
+        int lastTo = -1;
+        int lastOffset = 0;
+        for (Node step = node; step.parent != null; step = step.parent) {
+            // The player walks behind the crate and pushes it back to where it was pulled from
+            int offset = step.pulledFrom - step.pulledTo;
+            int behind = step.pulledTo - offset;
+            moves += distances(freeCells(floor, step.position.crates), width, player)[behind] + 1;
+            if (step.pulledTo != lastTo || offset != lastOffset) {
+                boxLines++;
+            }
+            lastTo = step.pulledFrom;
+            lastOffset = offset;
+            player = step.pulledTo;
+        }
+
+        int[] crateAt = new int[floor.length];
+        Arrays.fill(crateAt, -1);
+        for (int crate : node.position.crates) {
+            crateAt[crate] = crate;
+        }
+        int score = node.depth + BOX_LINE_WEIGHT * boxLines;
+        return new GeneratedLevel(render(room, goal, crateAt, start), seed,
+                node.depth, moves, boxLines, score);
+    }
+
+    private static boolean[] freeCells(boolean[] floor, int[] crates) {
+        boolean[] free = floor.clone();
+        for (int crate : crates) {
+            free[crate] = false;
+        }
+        return free;
+    }
+
+    /**
+     * Returns the lowest numbered cell the player can walk to from a cell,
+     * which stands for the whole area they can reach.
+     */
+    private static int area(boolean[] free, int width, int cell) {
+        int[] distance = distances(free, width, cell);
+        for (int i = 0; i < distance.length; i++) {
+            if (distance[i] >= 0) {
+                return i;
+            }
+        }
+        return cell;
+    }
+
+    /**
+     * Writes a position out as the lines of a level file.
+     */
+    private static List<String> render(char[][] room, boolean[] goal, int[] crateAt, int player) {
+        int width = room[0].length;
+        List<String> lines = new ArrayList<>(room.length);
+        for (int y = 0; y < room.length; y++) {
+            char[] line = new char[width];
+            for (int x = 0; x < width; x++) {
+                int cell = y * width + x;
+                if (cell == player) {
+                    line[x] = PLAYER;
+                } else if (crateAt[cell] >= 0) {
+                    line[x] = CRATE;
+                } else if (goal[cell]) {
+                    line[x] = GOAL;
+                } else {
+                    line[x] = room[y][x];
+                }
+            }
+            lines.add(new String(line));
+        }
+        return lines;
+    }
+
+    /**
+     * A position in the reverse play search: the sorted crate cells and the
+     * area the player is in, given by its lowest numbered cell.
+     */
+    private static final class Position {
+
+        private final int player;
+        private final int[] crates;
+        private final int hash;
+
+        Position(int player, int[] crates) {
+            this.player = player;
+            this.crates = crates;
+            this.hash = 31 * player + Arrays.hashCode(crates);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Position)) {
+                return false;
+            }
+            Position other = (Position) obj;
+            return player == other.player && Arrays.equals(crates, other.crates);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A position reached by the search, with the pull that reached it.
+     */
+    private static final class Node {
+
+        private final Position position;
+        private final int playerCell;
+        private final Node parent;
+        private final int pulledFrom;
+        private final int pulledTo;
+        private final int depth;
+
+        Node(Position position, int playerCell, Node parent, int pulledFrom, int pulledTo, int depth) {
+            this.position = position;
+            this.playerCell = playerCell;
+            this.parent = parent;
+            this.pulledFrom = pulledFrom;
+            this.pulledTo = pulledTo;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * A level produced by the generator together with its difficulty grading.
+     * The pushes are the fewest needed to solve the level, and the moves and
+     * box-line changes are those of a solution with that many pushes.
+     */
+    public static class GeneratedLevel {
+
+        private final List<String> lines;
+        private final long seed;
+        private final int pushes;
+        private final int moves;
+        private final int boxLineChanges;
+        private final int score;
+
+        /**
+         * Constructs a new GeneratedLevel.
+         *
+         * @param lines          the lines of the level in the map file format
+         * @param seed           the seed the level was generated from
+         * @param pushes         the number of pushes needed by the known solution
+         * @param moves          the number of moves needed by the known solution
+         * @param boxLineChanges the number of times the known solution changes crate or direction
+         * @param score          the difficulty score of the level
+         */
+        public GeneratedLevel(List<String> lines, long seed, int pushes, int moves, int boxLineChanges, int score) {
+            this.lines = lines;
+            this.seed = seed;
+            this.pushes = pushes;
+            this.moves = moves;
+            this.boxLineChanges = boxLineChanges;
+            this.score = score;
+        }
+
+        /**
+         * Returns the lines of the level in the map file format.
+         *
+         * @return the lines of the level
+         */
+        public List<String> getLines() {
+            return lines;
+        }
+
+        /**
+         * Returns the seed the level was generated from.
+         *
+         * @return the seed of the level
+         */
+        public long getSeed() {
+            return seed;
+        }
+
+        /**
+         * Returns the number of pushes needed by the known solution.
+         *
+         * @return the number of pushes
+         */
+        public int getPushes() {
+            return pushes;
+        }
+
+        /**
+         * Returns the number of moves needed by the known solution.
+         *
+         * @return the number of moves
+         */
+        public int getMoves() {
+            return moves;
+        }
+
+        /**
+         * Returns the number of box-line changes in the known solution.
+         *
+         * @return the number of box-line changes
+         */
+        public int getBoxLineChanges() {
+            return boxLineChanges;
+        }
+
+        /**
+         * Returns the difficulty score of the level, higher is harder.
+         *
+         * @return the difficulty score
+         */
+        public int getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * Generates a batch of levels and writes them to a folder, one file per
+     * level, along with a line per level on the console giving its grading.
+     * Put the folder on the classpath to open the files with Level.loadLevel.
+     *
+     * @param args the number of levels, the output folder and optionally the seed
+     * @throws IOException if a level file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: LevelGenerator <count> <output folder> [seed]");
+            return;
+        }
+        int count = Integer.parseInt(args[0]);
+        Path folder = Paths.get(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : System.nanoTime();
+
+        LevelGenerator generator = new LevelGenerator(4, 3, 4, 20000, 8);
+        List<GeneratedLevel> levels = generator.generate(count, seed);
+
+        Files.createDirectories(folder);
+        for (int i = 0; i < levels.size(); i++) {
+            GeneratedLevel level = levels.get(i);
+            String name = String.format("level%04d.txt", i + 1);
+            Files.write(folder.resolve(name), level.getLines());
+            System.out.println(name + " seed=" + level.getSeed() + " pushes=" + level.getPushes()
+                    + " moves=" + level.getMoves() + " boxLines=" + level.getBoxLineChanges()
+                    + " score=" + level.getScore());
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package sokoban;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A precomputed table of crate and wall patterns that can be shared by every
+ * engine and solver thread. Each pattern is the 3x3 window around a crate that
+ * has just been pushed, with every other cell being empty, a wall or a crate.
+ * For each pattern the table records which crates in the window can never be
+ * pushed again, and how many pushes of the other crates are needed before the
+ * centre crate can move. A frozen crate that is not on a goal means the level
+ * can no longer be solved.
+ *
+ * The table is indexed directly by the pattern, so a lookup is a single read.
+ * It is stored as a small header followed by one short per pattern, and can be
+ * memory-mapped read only from a file written by the builder in main.
+ */
+public final class PatternDatabase {
+
+    /**
+     * What a cell in a pattern holds.
+     */
+    public static final int EMPTY = 0;
+    public static final int WALL = 1;
+    public static final int CRATE = 2;
+
+    /**
+     * The offsets of the neighbours of the centre crate, in the order they are
+     * combined into a pattern. The first neighbour is the most significant digit.
+     */
+    public static final int[] DX = {-1, 0, 1, -1, 1, -1, 0, 1};
+    public static final int[] DY = {-1, -1, -1, 0, 0, 1, 1, 1};
+    public static final int NEIGHBOURS = 8;
+
+    /**
+     * The bit of the frozen mask used for the centre crate. Neighbour i uses bit i.
+     */
+    public static final int CENTRE = 8;
+
+    /**
+     * The system property naming a pattern database file to map instead of
+     * building the table when the shared instance is first used.
+     */
+    public static final String FILE_PROPERTY = "sokoban.patterns";
+
+    private static final int MAGIC = 0x534B5044;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final int PATTERNS = 6561;
+    private static final int MAX_COST = 127;
+
+    //Window cells are numbered 0 to 8 in reading order, with the centre at 4
+    private static final int WINDOW_CENTRE = 4;
+    private static final int[] WINDOW_CELL = {0, 1, 2, 3, 5, 6, 7, 8};
+    private static final int[] PUSH_X = {0, 0, -1, 1};
+    private static final int[] PUSH_Y = {-1, 1, 0, 0};
+
+    private final ByteBuffer table;
+
+    private PatternDatabase(ByteBuffer table) {
+        this.table = table;
+    }
+
+    /**
+     * Returns the database shared by the whole program. The first call maps the
+     * file named by the sokoban.patterns system property, or builds the table
+     * if there is no such file, and later calls return the same instance.
+     *
+     * @return the shared pattern database
+     */
+    public static PatternDatabase getShared() {
+        return Holder.SHARED;
+    }
+
+    /**
+     * Holds the shared instance so it is created once, on first use, by
+     * whichever thread gets there first.
+     */
+    private static class Holder {
+        private static final PatternDatabase SHARED = loadShared();
+
+        private static PatternDatabase loadShared() {
+            String file = System.getProperty(FILE_PROPERTY);
+            if (file != null) {
+                try {
+                    return load(Paths.get(file));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            return build();
+        }
+    }
+
+    /**
+     * Returns the mask of crates in a pattern that can never be pushed again.
+     * Bit i is set for neighbour i and bit CENTRE for the centre crate.
+     *
+     * @param pattern the pattern, built from the neighbours' contents in base 3
+     * @return the mask of frozen crates
+     */
+    public int frozenMask(int pattern) {
+        return table.getShort(HEADER_BYTES + pattern * 2) & 0x1FF;
+    }
+
+    /**
+     * Checks if a pattern has a frozen crate that is not on a goal, which means
+     * the level can no longer be solved.
+     *
+     * @param pattern the pattern, built from the neighbours' contents in base 3
+     * @param goals   tells which cells of the window are goals
+     * @return true if a frozen crate is off a goal, false otherwise
+     */
+    public boolean isDeadlock(int pattern, GoalTest goals) {
+        int frozen = frozenMask(pattern);
+        if ((frozen & (1 << CENTRE)) != 0 && !goals.isGoal(0, 0)) {
+            return true;
+        }
+        for (int i = 0; i < NEIGHBOURS; i++) {
+            if ((frozen & (1 << i)) != 0 && !goals.isGoal(DX[i], DY[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells which cells around the centre crate of a pattern are goals.
+     */
+    public interface GoalTest {
+
+        /**
+         * Checks if a cell of the window is a goal.
+         *
+         * @param dx the x offset of the cell from the centre crate
+         * @param dy the y offset of the cell from the centre crate
+         * @return true if the cell is a goal, false otherwise
+         */
+        boolean isGoal(int dx, int dy);
+    }
+
+    /**
+     * Returns how many pushes of other crates are needed before the centre crate
+     * of a pattern can be pushed again. While the centre crate is off a goal, at
+     * least this many pushes plus one are still needed to solve the level.
+     *
+     * @param pattern the pattern, built from the neighbours' contents in base 3
+     * @return the number of pushes needed to free the centre crate
+     */
+    public int extraCost(int pattern) {
+        return (table.getShort(HEADER_BYTES + pattern * 2) >>> 9) & MAX_COST;
+    }
+
+    /**
+     * Builds the table in memory by analysing every pattern. Like a mapped
+     * file, the table is read only once built so it can be shared safely.
+     *
+     * @return the built database
+     */
+    public static PatternDatabase build() {
+        ByteBuffer table = ByteBuffer.allocate(HEADER_BYTES + PATTERNS * 2);
+        table.putInt(0, MAGIC);
+        table.putInt(4, VERSION);
+        table.putInt(8, PATTERNS);
+        for (int pattern = 0; pattern < PATTERNS; pattern++) {
+            table.putShort(HEADER_BYTES + pattern * 2, analyse(pattern));
+        }
+        return new PatternDatabase(table.asReadOnlyBuffer());
+    }
+
+    /**
+     * Maps a database file written by write into memory, read only.
+     *
+     * @param file the file to map
+     * @return the mapped database
+     * @throws IOException if the file cannot be read or is not a pattern database
+     */
+    public static PatternDatabase load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() != HEADER_BYTES + PATTERNS * 2) {
+                throw new IOException("Pattern database has the wrong size: " + file);
+            }
+            ByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION || table.getInt(8) != PATTERNS) {
+                throw new IOException("Not a pattern database or wrong version: " + file);
+            }
+            return new PatternDatabase(table);
+        }
+    }
+
+    /**
+     * Writes the database to a file so it can be mapped by load.
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer contents = table.duplicate();
+            contents.clear();
+            while (contents.hasRemaining()) {
+                channel.write(contents);
+            }
+        }
+    }
+
+    /**
+     * Works out the table entry for a pattern. Everything outside the window is
+     * treated as open floor and the player as able to stand on any free cell,
+     * which can only make crates easier to move, so a crate is only marked as
+     * frozen when it truly can never be pushed.
+     *
+     * @param pattern the pattern to analyse
+     * @return the frozen mask in the low 9 bits and the extra cost above them
+     */
+    private static short analyse(int pattern) {
+        boolean[] wall = new boolean[9];
+        int crates = 1 << WINDOW_CENTRE;
+        for (int i = NEIGHBOURS - 1; i >= 0; i--) {
+            int cell = pattern % 3;
+            pattern /= 3;
+            if (cell == WALL) {
+                wall[WINDOW_CELL[i]] = true;
+            } else if (cell == CRATE) {
+                crates |= 1 << WINDOW_CELL[i];
+            }
+        }
+
+        int frozen = 0;
+        int cost = 0;
+        for (int i = 0; i < NEIGHBOURS; i++) {
+            int cell = WINDOW_CELL[i];
+            if ((crates & (1 << cell)) != 0 && pushesToFree(wall, crates, cell) < 0) {
+                frozen |= 1 << i;
+            }
+        }
+        int centreCost = pushesToFree(wall, crates, WINDOW_CENTRE);
+        if (centreCost < 0) {
+            frozen |= 1 << CENTRE;
+        } else {
+            cost = Math.min(centreCost, MAX_COST);
+        }
+        return (short) (frozen | cost << 9);
+    }
+
+    /**
+     * Finds the fewest pushes of the other crates in the window needed before
+     * one crate can be pushed, by searching over where the other crates can be
+     * pushed to. Crates pushed out of the window are no longer in the way.
+     *
+     * @param wall   which window cells are walls
+     * @param crates the window cells holding crates, as a bit mask
+     * @param target the window cell of the crate to free
+     * @return the number of pushes, or -1 if the crate can never be pushed
+     */
+    private static int pushesToFree(boolean[] wall, int crates, int target) {
+        int[] depth = new int[1 << 9];
+        Arrays.fill(depth, -1);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        depth[crates] = 0;
+        queue.add(crates);
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            if (canPush(wall, state, target)) {
+                return depth[state];
+            }
+            for (int cell = 0; cell < 9; cell++) {
+                if (cell == target || (state & (1 << cell)) == 0) {
+                    continue;
+                }
+                for (int d = 0; d < 4; d++) {
+                    int to = pushedTo(wall, state, cell, d);
+                    if (to < -1) {
+                        continue;
+                    }
+                    int next = state & ~(1 << cell);
+                    if (to >= 0) {
+                        next |= 1 << to;
+                    }
+                    if (depth[next] < 0) {
+                        depth[next] = depth[state] + 1;
+                        queue.add(next);
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks if a crate can be pushed in any direction.
+     */
+    private static boolean canPush(boolean[] wall, int crates, int cell) {
+        for (int d = 0; d < 4; d++) {
+            if (pushedTo(wall, crates, cell, d) >= -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Works out where a crate goes when pushed in a direction.
+     *
+     * @return the window cell the crate moves to, -1 if it leaves the window,
+     * or -2 if it cannot be pushed that way
+     */
+    private static int pushedTo(boolean[] wall, int crates, int cell, int direction) {
+        int x = cell % 3;
+        int y = cell / 3;
+        int behind = windowCell(x - PUSH_X[direction], y - PUSH_Y[direction]);
+        int ahead = windowCell(x + PUSH_X[direction], y + PUSH_Y[direction]);
+        if (isFree(wall, crates, behind) && isFree(wall, crates, ahead)) {
+            return ahead;
+        }
+        return -2;
+    }
+
+    private static int windowCell(int x, int y) {
+        return x < 0 || y < 0 || x > 2 || y > 2 ? -1 : y * 3 + x;
+    }
+
+    private static boolean isFree(boolean[] wall, int crates, int cell) {
+        return cell < 0 || (!wall[cell] && (crates & (1 << cell)) == 0);
+    }
+
+    /**
+     * Builds the pattern database and writes it to a file.
+     *
+     * @param args the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: PatternDatabase <output file>");
+            return;
+        }
+        PatternDatabase database = build();
+        database.write(Paths.get(args[0]));
+
+        int deadlocks = 0;
+        for (int pattern = 0; pattern < PATTERNS; pattern++) {
+            if ((database.frozenMask(pattern) & (1 << CENTRE)) != 0) {
+                deadlocks++;
+            }
+        }
+        System.out.println("Wrote " + PATTERNS + " patterns to " + args[0]
+                + ", " + deadlocks + " freeze the pushed crate");
+    }
+}
@@ -0,0 +1,657 @@
+package sokoban;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Shortens known solutions to a level. The solution is replayed through the
+ * GameEngine without graphics, then every window of consecutive moves is
+ * searched for a cheaper way between the positions at its two ends. The
+ * windows are searched in parallel on a work-stealing pool and the improvements
+ * that do not overlap are spliced in, repeating until no window improves.
+ * Pushes that the shared PatternDatabase shows to be deadlocks are never
+ * searched, since no solution can pass through them, and its extra cost for
+ * freeing a crate prunes paths that can no longer beat the known one.
+ * Solutions are written in LURD notation, with upper case letters for pushes.
+ */
+public class SolutionOptimizer {
+
+    /**
+     * What the optimizer minimises first, ties are broken by the other count.
+     */
+    public enum Metric {
+        MOVES, PUSHES
+    }
+
+    private static final String DIRECTIONS = "udlr";
+    private static final int[] DX = {0, 0, -1, 1};
+    private static final int[] DY = {-1, 1, 0, 0};
+    private static final long SECONDARY = 1L << 32;
+
+    /**
+     * Stands in for the end position of the last window, which may finish on
+     * any position where every crate is on a goal.
+     */
+    private static final State SOLVED = new State(-1, new int[0]);
+
+    //Variables
+    private final Metric metric;
+    private final int windowSize;
+    private final int maxStates;
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructs a new SolutionOptimizer using the common fork/join pool.
+     *
+     * @param metric     what to minimise first
+     * @param windowSize the number of moves in each window searched
+     * @param maxStates  the most positions searched for a single window
+     */
+    public SolutionOptimizer(Metric metric, int windowSize, int maxStates) {
+        this(metric, windowSize, maxStates, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructs a new SolutionOptimizer.
+     *
+     * @param metric     what to minimise first
+     * @param windowSize the number of moves in each window searched
+     * @param maxStates  the most positions searched for a single window
+     * @param pool       the pool the windows are searched on
+     */
+    public SolutionOptimizer(Metric metric, int windowSize, int maxStates, ForkJoinPool pool) {
+        if (windowSize < 2 || maxStates < 1) {
+            throw new IllegalArgumentException("Window size must be at least 2 and max states positive");
+        }
+        this.metric = metric;
+        this.windowSize = windowSize;
+        this.maxStates = maxStates;
+        this.pool = pool;
+    }
+
+    /**
+     * Optimizes a solution to a level.
+     *
+     * @param level    the level the solution is for
+     * @param solution the solution in LURD notation
+     * @return the optimized solution with its move and push counts before and after
+     * @throws IllegalArgumentException if the solution is blocked or does not solve the level
+     */
+    public Result optimize(Level level, String solution) {
+        Board board = new Board(level);
+        Map<WindowKey, String> cache = new ConcurrentHashMap<>();
+
+        Replay original = replay(board, level, solution);
+        Replay current = original;
+        while (true) {
+            List<int[]> windows = new ArrayList<>();
+            int length = current.solution.length();
+            for (int start = 0; start < length - 1; start += Math.max(1, windowSize / 2)) {
+                windows.add(new int[]{start, Math.min(start + windowSize, length)});
+            }
+
+            List<Improvement> improvements = pool.invoke(
+                    new WindowTask(board, current, windows, cache, 0, windows.size()));
+            if (improvements.isEmpty()) {
+                break;
+            }
+
+            // Take the biggest savings first, skipping any window that overlaps one already taken
+            improvements.sort((a, b) -> a.saving != b.saving
+                    ? Long.compare(b.saving, a.saving)
+                    : Integer.compare(a.start, b.start));
+            List<Improvement> chosen = new ArrayList<>();
+            for (Improvement improvement : improvements) {
+                boolean overlaps = false;
+                for (Improvement other : chosen) {
+                    if (improvement.start < other.end && other.start < improvement.end) {
+                        overlaps = true;
+                        break;
+                    }
+                }
+                if (!overlaps) {
+                    chosen.add(improvement);
+                }
+            }
+
+            // Splice from the back so earlier window positions stay valid
+            chosen.sort((a, b) -> Integer.compare(b.start, a.start));
+            StringBuilder spliced = new StringBuilder(current.solution);
+            for (Improvement improvement : chosen) {
+                spliced.replace(improvement.start, improvement.end, improvement.path);
+            }
+            current = replay(board, level, spliced.toString());
+        }
+
+        return new Result(original.submittedMoves, original.submittedPushes,
+                current.moves, current.pushes, current.solution);
+    }
+
+    /**
+     * Plays a solution through a new GameEngine, recording the position after
+     * every move and marking pushes with upper case letters. The solution is
+     * cut where the level is first solved and counted as cut, but the counts
+     * of every move given are kept too so they can be reported as submitted.
+     *
+     * @param board    the board positions are recorded on
+     * @param level    the level the solution is for
+     * @param solution the solution in LURD notation
+     * @return the replayed solution
+     * @throws IllegalArgumentException if the solution is blocked or does not solve the level
+     */
+    private static Replay replay(Board board, Level level, String solution) {
+        GameEngine engine = new GameEngine(level);
+        List<State> states = new ArrayList<>();
+        states.add(State.of(engine, board));
+        StringBuilder normalized = new StringBuilder();
+        int solvedLength = -1;
+
+        for (char c : solution.toCharArray()) {
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            int d = DIRECTIONS.indexOf(Character.toLowerCase(c));
+            if (d < 0) {
+                throw new IllegalArgumentException("Unknown move '" + c + "' in solution");
+            }
+            int pushesBefore = engine.getPushCount();
+            if (!engine.move(DX[d], DY[d])) {
+                throw new IllegalArgumentException("Solution is blocked at move " + (normalized.length() + 1));
+            }
+            boolean push = engine.getPushCount() != pushesBefore;
+            normalized.append(push ? Character.toUpperCase(DIRECTIONS.charAt(d)) : DIRECTIONS.charAt(d));
+            if (solvedLength < 0) {
+                states.add(State.of(engine, board));
+                if (engine.isSolved()) {
+                    solvedLength = normalized.length();
+                }
+            }
+        }
+
+        if (solvedLength < 0) {
+            throw new IllegalArgumentException("Solution does not solve the level");
+        }
+        String trimmed = normalized.substring(0, solvedLength);
+        int pushes = 0;
+        for (int i = 0; i < trimmed.length(); i++) {
+            if (Character.isUpperCase(trimmed.charAt(i))) {
+                pushes++;
+            }
+        }
+        return new Replay(trimmed, states, trimmed.length(), pushes,
+                engine.getMoveCount(), engine.getPushCount());
+    }
+
+    /**
+     * Returns the cost of a sequence of moves, ordered by the metric.
+     */
+    private long cost(String path) {
+        long pushes = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (Character.isUpperCase(path.charAt(i))) {
+                pushes++;
+            }
+        }
+        return cost(path.length(), pushes);
+    }
+
+    private long cost(long moves, long pushes) {
+        return metric == Metric.MOVES ? moves * SECONDARY + pushes : pushes * SECONDARY + moves;
+    }
+
+    /**
+     * Finds the cheapest sequence of moves from one position to another,
+     * giving up on any path costing more than the bound.
+     *
+     * @param board the walls of the level
+     * @param start the position to start from
+     * @param end   the position to reach, or SOLVED for any solved position
+     * @param bound the cost of the known path between the positions
+     * @return the cheapest path, or empty if the search ran out of states
+     */
+    private Optional<String> search(Board board, State start, State end, long bound) {
+        PriorityQueue<Node> open = new PriorityQueue<>((a, b) -> Long.compare(a.cost, b.cost));
+        Map<State, Long> bestCost = new HashMap<>();
+        open.add(new Node(start, 0, 0, 0, null, ' '));
+        bestCost.put(start, 0L);
+        int expanded = 0;
+
+        while (!open.isEmpty()) {
+            Node node = open.poll();
+            if (node.cost > bestCost.get(node.state)) {
+                continue;
+            }
+            if (end == SOLVED ? board.isSolved(node.state.crates) : node.state.equals(end)) {
+                StringBuilder path = new StringBuilder();
+                for (Node n = node; n.parent != null; n = n.parent) {
+                    path.append(n.move);
+                }
+                return Optional.of(path.reverse().toString());
+            }
+            if (++expanded > maxStates) {
+                return Optional.empty();
+            }
+
+            for (int d = 0; d < 4; d++) {
+                int offset = DY[d] * board.width + DX[d];
+                int next = node.state.player + offset;
+                if (board.walls[next]) {
+                    continue;
+                }
+                int[] crates = node.state.crates;
+                int crate = Arrays.binarySearch(crates, next);
+                boolean push = crate >= 0;
+                long remaining = 0;
+                if (push) {
+                    int beyond = next + offset;
+                    if (board.walls[beyond] || Arrays.binarySearch(crates, beyond) >= 0) {
+                        continue;
+                    }
+                    crates = crates.clone();
+                    crates[crate] = beyond;
+                    Arrays.sort(crates);
+                    int pattern = board.pattern(beyond, crates);
+                    if (board.isDeadlock(beyond, pattern)) {
+                        continue;
+                    }
+                    // A crate that must move again first needs its neighbours cleared, costing at least a push each
+                    boolean mustMove = end == SOLVED
+                            ? !board.goals[beyond]
+                            : Arrays.binarySearch(end.crates, beyond) < 0;
+                    if (mustMove) {
+                        remaining = (board.patterns.extraCost(pattern) + 1) * SECONDARY;
+                    }
+                }
+
+                long moves = node.moves + 1;
+                long pushes = node.pushes + (push ? 1 : 0);
+                long cost = cost(moves, pushes);
+                if (cost + remaining > bound) {
+                    continue;
+                }
+                State state = new State(next, crates);
+                Long known = bestCost.get(state);
+                if (known == null || cost < known) {
+                    bestCost.put(state, cost);
+                    char move = push ? Character.toUpperCase(DIRECTIONS.charAt(d)) : DIRECTIONS.charAt(d);
+                    open.add(new Node(state, cost, moves, pushes, node, move));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Searches a range of windows, splitting the range in half and forking
+     * until each task has a single window.
+     */
+    private class WindowTask extends RecursiveTask<List<Improvement>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Board board;
+        private final Replay replay;
+        private final List<int[]> windows;
+        private final Map<WindowKey, String> cache;
+        private final int from;
+        private final int to;
+
+        WindowTask(Board board, Replay replay, List<int[]> windows,
+                Map<WindowKey, String> cache, int from, int to) {
+            this.board = board;
+            this.replay = replay;
+            this.windows = windows;
+            this.cache = cache;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Improvement> compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                WindowTask left = new WindowTask(board, replay, windows, cache, from, middle);
+                left.fork();
+                List<Improvement> improvements = new WindowTask(board, replay, windows, cache, middle, to).compute();
+                improvements.addAll(left.join());
+                return improvements;
+            }
+
+            List<Improvement> improvements = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                int start = windows.get(i)[0];
+                int end = windows.get(i)[1];
+                String known = replay.solution.substring(start, end);
+                long knownCost = cost(known);
+                State startState = replay.states.get(start);
+                // The last window can end anywhere the level is solved, not just where the player finished
+                State endState = end == replay.solution.length() ? SOLVED : replay.states.get(end);
+
+                // A path found is the cheapest between its positions whatever the bound, so it is
+                // kept, but a search that ran out of states may finish under another bound
+                WindowKey key = new WindowKey(startState, endState);
+                Optional<String> best = Optional.ofNullable(cache.get(key));
+                if (!best.isPresent()) {
+                    best = search(board, startState, endState, knownCost);
+                    best.ifPresent(path -> cache.putIfAbsent(key, path));
+                }
+                if (best.isPresent() && cost(best.get()) < knownCost) {
+                    improvements.add(new Improvement(start, end, best.get(), knownCost - cost(best.get())));
+                }
+            }
+            return improvements;
+        }
+    }
+
+    /**
+     * The walls and goals of a level with a ring of wall around it, so moves
+     * off the edge of an open map are blocked like the engine blocks them.
+     * Cells are indexed by (y + 1) * width + x + 1.
+     */
+    private static final class Board {
+
+        private final int width;
+        private final boolean[] walls;
+        private final boolean[] goals;
+        private final PatternDatabase patterns;
+
+        Board(Level level) {
+            width = level.getCols() + 2;
+            walls = new boolean[(level.getRows() + 2) * width];
+            goals = new boolean[walls.length];
+            patterns = PatternDatabase.getShared();
+            Arrays.fill(walls, true);
+            char[][] map = level.getMap();
+            for (int y = 0; y < level.getRows(); y++) {
+                for (int x = 0; x < level.getCols(); x++) {
+                    walls[index(x, y)] = map[y][x] == 'X';
+                    goals[index(x, y)] = map[y][x] == '.';
+                }
+            }
+        }
+
+        int index(int x, int y) {
+            return (y + 1) * width + x + 1;
+        }
+
+        boolean isSolved(int[] crates) {
+            for (int crate : crates) {
+                if (!goals[crate]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Builds the PatternDatabase pattern of the cells around a crate.
+         */
+        int pattern(int cell, int[] crates) {
+            int pattern = 0;
+            for (int i = 0; i < PatternDatabase.NEIGHBOURS; i++) {
+                int neighbour = cell + PatternDatabase.DY[i] * width + PatternDatabase.DX[i];
+                int contents = PatternDatabase.EMPTY;
+                if (walls[neighbour]) {
+                    contents = PatternDatabase.WALL;
+                } else if (Arrays.binarySearch(crates, neighbour) >= 0) {
+                    contents = PatternDatabase.CRATE;
+                }
+                pattern = pattern * 3 + contents;
+            }
+            return pattern;
+        }
+
+        /**
+         * Checks if the crates around a crate that has just been pushed include
+         * one that can never move again while off a goal.
+         */
+        boolean isDeadlock(int cell, int pattern) {
+            return patterns.isDeadlock(pattern, (dx, dy) -> goals[cell + dy * width + dx]);
+        }
+    }
+
+    /**
+     * A position in the level: where the player is and where the crates are,
+     * with the crates kept in sorted order so equal positions compare equal.
+     */
+    private static final class State {
+
+        private final int player;
+        private final int[] crates;
+        private final int hash;
+
+        State(int player, int[] crates) {
+            this.player = player;
+            this.crates = crates;
+            this.hash = 31 * player + Arrays.hashCode(crates);
+        }
+
+        static State of(GameEngine engine, Board board) {
+            List<Integer> cells = new ArrayList<>();
+            for (MapElement element : engine.getElements().values()) {
+                if (element instanceof Crate) {
+                    cells.add(board.index(element.getX(), element.getY()));
+                }
+            }
+            int[] crates = new int[cells.size()];
+            for (int i = 0; i < crates.length; i++) {
+                crates[i] = cells.get(i);
+            }
+            Arrays.sort(crates);
+            Player player = engine.getPlayer();
+            return new State(board.index(player.getX(), player.getY()), crates);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof State)) {
+                return false;
+            }
+            State other = (State) obj;
+            return player == other.player && Arrays.equals(crates, other.crates);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The two positions at the ends of a window, used as the key of the cache
+     * of cheapest paths found.
+     */
+    private static final class WindowKey {
+
+        private final State start;
+        private final State end;
+
+        WindowKey(State start, State end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof WindowKey)) {
+                return false;
+            }
+            WindowKey other = (WindowKey) obj;
+            return start.equals(other.start) && end.equals(other.end);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * start.hashCode() + end.hashCode();
+        }
+    }
+
+    /**
+     * A position reached during a window search.
+     */
+    private static final class Node {
+
+        private final State state;
+        private final long cost;
+        private final long moves;
+        private final long pushes;
+        private final Node parent;
+        private final char move;
+
+        Node(State state, long cost, long moves, long pushes, Node parent, char move) {
+            this.state = state;
+            this.cost = cost;
+            this.moves = moves;
+            this.pushes = pushes;
+            this.parent = parent;
+            this.move = move;
+        }
+    }
+
+    /**
+     * A solution replayed through the engine, with the position after each
+     * move. The moves and pushes are those of the solution cut where the level
+     * is solved, the submitted counts include any moves played after that.
+     */
+    private static final class Replay {
+
+        private final String solution;
+        private final List<State> states;
+        private final int moves;
+        private final int pushes;
+        private final int submittedMoves;
+        private final int submittedPushes;
+
+        Replay(String solution, List<State> states, int moves, int pushes,
+                int submittedMoves, int submittedPushes) {
+            this.solution = solution;
+            this.states = states;
+            this.moves = moves;
+            this.pushes = pushes;
+            this.submittedMoves = submittedMoves;
+            this.submittedPushes = submittedPushes;
+        }
+    }
+
+    /**
+     * A cheaper path found for a window of the solution.
+     */
+    private static final class Improvement {
+
+        private final int start;
+        private final int end;
+        private final String path;
+        private final long saving;
+
+        Improvement(int start, int end, String path, long saving) {
+            this.start = start;
+            this.end = end;
+            this.path = path;
+            this.saving = saving;
+        }
+    }
+
+    /**
+     * The outcome of optimizing a solution.
+     */
+    public static class Result {
+
+        private final int originalMoves;
+        private final int originalPushes;
+        private final int moves;
+        private final int pushes;
+        private final String solution;
+
+        /**
+         * Constructs a new Result.
+         *
+         * @param originalMoves  the number of moves in the original solution
+         * @param originalPushes the number of pushes in the original solution
+         * @param moves          the number of moves in the optimized solution
+         * @param pushes         the number of pushes in the optimized solution
+         * @param solution       the optimized solution in LURD notation
+         */
+        public Result(int originalMoves, int originalPushes, int moves, int pushes, String solution) {
+            this.originalMoves = originalMoves;
+            this.originalPushes = originalPushes;
+            this.moves = moves;
+            this.pushes = pushes;
+            this.solution = solution;
+        }
+
+        /**
+         * Returns the number of moves in the original solution.
+         *
+         * @return the original number of moves
+         */
+        public int getOriginalMoves() {
+            return originalMoves;
+        }
+
+        /**
+         * Returns the number of pushes in the original solution.
+         *
+         * @return the original number of pushes
+         */
+        public int getOriginalPushes() {
+            return originalPushes;
+        }
+
+        /**
+         * Returns the number of moves in the optimized solution.
+         *
+         * @return the optimized number of moves
+         */
+        public int getMoves() {
+            return moves;
+        }
+
+        /**
+         * Returns the number of pushes in the optimized solution.
+         *
+         * @return the optimized number of pushes
+         */
+        public int getPushes() {
+            return pushes;
+        }
+
+        /**
+         * Returns the optimized solution in LURD notation.
+         *
+         * @return the optimized solution
+         */
+        public String getSolution() {
+            return solution;
+        }
+    }
+
+    /**
+     * Optimizes a solution to a level and prints the counts before and after.
+     *
+     * @param args the level file, the solution and optionally the metric and window size
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: SolutionOptimizer <level file> <solution> [moves|pushes] [window size]");
+            return;
+        }
+        Level level = new Level();
+        level.loadLevel(args[0]);
+        Metric metric = args.length > 2 ? Metric.valueOf(args[2].toUpperCase()) : Metric.MOVES;
+        int windowSize = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+
+        SolutionOptimizer optimizer = new SolutionOptimizer(metric, windowSize, 200000);
+        Result result = optimizer.optimize(level, args[1]);
+        System.out.println("Before: " + result.getOriginalMoves() + " moves, " + result.getOriginalPushes() + " pushes");
+        System.out.println("After:  " + result.getMoves() + " moves, " + result.getPushes() + " pushes");
+        System.out.println(result.getSolution());
+    }
+}